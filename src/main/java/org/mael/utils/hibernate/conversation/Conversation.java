@@ -0,0 +1,35 @@
+package org.mael.utils.hibernate.conversation;
+
+import org.hibernate.Session;
+
+/**
+ * Holds the {@link Session} of a conversation and the
+ * {@link ConversationInterceptor} installed on it, if any.
+ *
+ * @author ElderMael
+ *
+ */
+class Conversation {
+
+	private final Session session;
+
+	private final ConversationInterceptor interceptor;
+
+	Conversation(Session session, ConversationInterceptor interceptor) {
+		this.session = session;
+		this.interceptor = interceptor;
+	}
+
+	Session getSession() {
+		return session;
+	}
+
+	/**
+	 * @return the interceptor installed on the {@link Session} or
+	 *         <code>null</code> if none was installed.
+	 */
+	ConversationInterceptor getInterceptor() {
+		return interceptor;
+	}
+
+}
@@ -0,0 +1,349 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hibernate.CallbackException;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.EntityMode;
+import org.hibernate.Interceptor;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * {@link Interceptor} installed by the {@link ConversationManager} on the
+ * {@link Session} of a conversation. If statement accounting is enabled, it
+ * counts the SQL statements prepared during each request and during the whole
+ * conversation.
+ * </p>
+ *
+ * <p>
+ * Statements prepared more times than the repeated statement threshold within
+ * a single request are reported to {@link ConversationStatistics}, as they are
+ * the usual symptom of N+1 selects caused by lazy loading.
+ * </p>
+ *
+ * <p>
+ * If a {@link ConversationQueryCache} is attached, the entities and collections
+ * changed by the {@link Session} are passed to it so cached results are
+ * invalidated after each flush, and it is cleared on transaction rollback.
+ * </p>
+ *
+ * <p>
+ * Every callback is delegated to the interceptor configured on the
+ * {@link SessionFactory}, so installing this interceptor does not disable it.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public class ConversationInterceptor implements Interceptor, Serializable {
+
+	private static final long serialVersionUID = 4_127_530_916_482_051_733L;
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ConversationInterceptor.class);
+
+	private final UUID conversationId;
+
+	private final Interceptor delegate;
+
+	private final boolean statementAccountingEnabled;
+
+	private final int repeatedStatementThreshold;
+
+	private ConversationQueryCache queryCache;
+
+	private final Map<String, Integer> requestStatements = new HashMap<String, Integer>();
+
+	private int requestStatementCount;
+
+	private long conversationStatementCount;
+
+	/**
+	 * Creates an interceptor that does not account statements.
+	 *
+	 * @param conversationId
+	 *            - id of the conversation owning the intercepted
+	 *            {@link Session}.
+	 * @param delegate
+	 *            - the interceptor configured on the {@link SessionFactory},
+	 *            may be <code>null</code>.
+	 */
+	public ConversationInterceptor(UUID conversationId, Interceptor delegate) {
+		this(conversationId, delegate, false, 0);
+	}
+
+	/**
+	 * Creates an interceptor that accounts statements.
+	 *
+	 * @param conversationId
+	 *            - id of the conversation owning the intercepted
+	 *            {@link Session}.
+	 * @param delegate
+	 *            - the interceptor configured on the {@link SessionFactory},
+	 *            may be <code>null</code>.
+	 * @param repeatedStatementThreshold
+	 *            - number of times a statement can be prepared within a
+	 *            request before being reported.
+	 */
+	public ConversationInterceptor(UUID conversationId, Interceptor delegate,
+			int repeatedStatementThreshold) {
+		this(conversationId, delegate, true, repeatedStatementThreshold);
+	}
+
+	private ConversationInterceptor(UUID conversationId, Interceptor delegate,
+			boolean statementAccountingEnabled, int repeatedStatementThreshold) {
+		this.conversationId = conversationId;
+		this.delegate = delegate == null ? EmptyInterceptor.INSTANCE
+				: delegate;
+		this.statementAccountingEnabled = statementAccountingEnabled;
+		this.repeatedStatementThreshold = repeatedStatementThreshold;
+	}
+
+	/**
+	 * Counts the statement returned by the delegate for the current request
+	 * and conversation.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String onPrepareStatement(String sql) {
+		String preparedSql = delegate.onPrepareStatement(sql);
+
+		if (!statementAccountingEnabled)
+			return preparedSql;
+
+		Integer count = requestStatements.get(preparedSql);
+
+		requestStatements.put(preparedSql, count == null ? 1 : count + 1);
+		requestStatementCount++;
+		conversationStatementCount++;
+
+		return preparedSql;
+	}
+
+	/**
+	 * Discards the statements counted for a previous request.
+	 */
+	public synchronized void beginRequest() {
+		requestStatements.clear();
+		requestStatementCount = 0;
+	}
+
+	/**
+	 * Reports the statements repeated above the threshold during the request
+	 * that has just been processed and resets the request counters.
+	 */
+	public synchronized void endRequest() {
+		if (!statementAccountingEnabled)
+			return;
+
+		for (Map.Entry<String, Integer> entry : requestStatements.entrySet()) {
+			if (entry.getValue() > repeatedStatementThreshold) {
+				log.warn(
+						"Statement prepared {} times in one request of conversation '{}': {}",
+						entry.getValue(), conversationId, entry.getKey());
+				ConversationStatistics.recordRepeatedStatement(entry.getKey(),
+						entry.getValue(), conversationId);
+			}
+		}
+
+		ConversationStatistics.recordRequest(requestStatementCount);
+
+		beginRequest();
+	}
+
+	@Override
+	public boolean onLoad(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) throws CallbackException {
+		return delegate.onLoad(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) throws CallbackException {
+		if (queryCache != null)
+			queryCache.entityChanged(entity);
+
+		return delegate.onSave(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id,
+			Object[] currentState, Object[] previousState,
+			String[] propertyNames, Type[] types) throws CallbackException {
+		if (queryCache != null)
+			queryCache.entityChanged(entity);
+
+		return delegate.onFlushDirty(entity, id, currentState, previousState,
+				propertyNames, types);
+	}
+
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state,
+			String[] propertyNames, Type[] types) throws CallbackException {
+		if (queryCache != null)
+			queryCache.entityChanged(entity);
+
+		delegate.onDelete(entity, id, state, propertyNames, types);
+	}
+
+	@Override
+	public void onCollectionRecreate(Object collection, Serializable key)
+			throws CallbackException {
+		if (queryCache != null)
+			queryCache.collectionChanged(collection);
+
+		delegate.onCollectionRecreate(collection, key);
+	}
+
+	@Override
+	public void onCollectionRemove(Object collection, Serializable key)
+			throws CallbackException {
+		if (queryCache != null)
+			queryCache.collectionChanged(collection);
+
+		delegate.onCollectionRemove(collection, key);
+	}
+
+	@Override
+	public void onCollectionUpdate(Object collection, Serializable key)
+			throws CallbackException {
+		if (queryCache != null)
+			queryCache.collectionChanged(collection);
+
+		delegate.onCollectionUpdate(collection, key);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void preFlush(Iterator entities) throws CallbackException {
+		delegate.preFlush(entities);
+	}
+
+	/**
+	 * Invalidates the cached query results affected by the flush.
+	 *
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) throws CallbackException {
+		if (queryCache != null)
+			queryCache.flushed();
+
+		delegate.postFlush(entities);
+	}
+
+	@Override
+	public Boolean isTransient(Object entity) {
+		return delegate.isTransient(entity);
+	}
+
+	@Override
+	public int[] findDirty(Object entity, Serializable id,
+			Object[] currentState, Object[] previousState,
+			String[] propertyNames, Type[] types) {
+		return delegate.findDirty(entity, id, currentState, previousState,
+				propertyNames, types);
+	}
+
+	@Override
+	public Object instantiate(String entityName, EntityMode entityMode,
+			Serializable id) throws CallbackException {
+		return delegate.instantiate(entityName, entityMode, id);
+	}
+
+	@Override
+	public String getEntityName(Object object) throws CallbackException {
+		return delegate.getEntityName(object);
+	}
+
+	@Override
+	public Object getEntity(String entityName, Serializable id)
+			throws CallbackException {
+		return delegate.getEntity(entityName, id);
+	}
+
+	@Override
+	public void afterTransactionBegin(Transaction tx) {
+		delegate.afterTransactionBegin(tx);
+	}
+
+	@Override
+	public void beforeTransactionCompletion(Transaction tx) {
+		delegate.beforeTransactionCompletion(tx);
+	}
+
+	/**
+	 * Clears the {@link ConversationQueryCache} if the transaction was rolled
+	 * back.
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		if (queryCache != null && tx != null && tx.wasRolledBack())
+			queryCache.rolledBack();
+
+		delegate.afterTransactionCompletion(tx);
+	}
+
+	public UUID getConversationId() {
+		return conversationId;
+	}
+
+	/**
+	 * @return the interceptor every callback is delegated to.
+	 */
+	public Interceptor getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return <code>true</code> if this interceptor counts the statements
+	 *         prepared by the {@link Session}.
+	 */
+	public boolean isStatementAccountingEnabled() {
+		return statementAccountingEnabled;
+	}
+
+	/**
+	 * @return the number of statements prepared during the current request.
+	 */
+	public synchronized int getRequestStatementCount() {
+		return requestStatementCount;
+	}
+
+	/**
+	 * @return the number of statements prepared since the conversation was
+	 *         created.
+	 */
+	public synchronized long getConversationStatementCount() {
+		return conversationStatementCount;
+	}
+
+	public ConversationQueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Attaches the {@link ConversationQueryCache} to be invalidated when the
+	 * intercepted {@link Session} flushes.
+	 *
+	 * @param queryCache
+	 */
+	public void setQueryCache(ConversationQueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+}
@@ -1,11 +1,20 @@
 package org.mael.utils.hibernate.conversation;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hibernate.Session;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>
@@ -17,15 +26,63 @@ import org.hibernate.engine.spi.SessionFactoryImplementor;
  * sessions.
  * </p>
  * 
+ * <p>
+ * If statement accounting or the query cache is enabled, a
+ * {@link ConversationInterceptor} wrapping the SessionFactory's interceptor is
+ * installed on every {@link Session} created.
+ * </p>
+ * 
  * @author ElderMael
  * 
  */
 public class ConversationManager {
 
-	private static Map<UUID, Session> conversationMap = new HashMap<UUID, Session>();
+	private static final Logger log = LoggerFactory
+			.getLogger(ConversationManager.class);
+
+	/**
+	 * Upper bound of threads used to close {@link Session}s in
+	 * {@link #shutdown(long, TimeUnit)}.
+	 */
+	private static final int MAX_SHUTDOWN_THREADS = 16;
+
+	/**
+	 * Default number of times a statement can be prepared within a request
+	 * before being reported by the {@link ConversationInterceptor}.
+	 */
+	public static final int DEFAULT_REPEATED_STATEMENT_THRESHOLD = 10;
+
+	/**
+	 * Default maximum number of query results kept by each
+	 * {@link ConversationQueryCache}.
+	 */
+	public static final int DEFAULT_QUERY_CACHE_SIZE = 100;
+
+	private static Map<UUID, Conversation> conversationMap = new ConcurrentHashMap<UUID, Conversation>();
 
 	private static SessionFactoryImplementor sessionFactory;
 
+	/**
+	 * Flag cleared by {@link #shutdown(long, TimeUnit)} to refuse new
+	 * conversations while the existing ones are being drained.
+	 */
+	private static volatile boolean acceptingConversations = true;
+
+	/**
+	 * Guards {@link #acceptingConversations} together with the registration of
+	 * new conversations, so no conversation is added once
+	 * {@link #shutdown(long, TimeUnit)} has started draining.
+	 */
+	private static final Object lifecycleLock = new Object();
+
+	private static volatile boolean statementAccountingEnabled = false;
+
+	private static volatile int repeatedStatementThreshold = DEFAULT_REPEATED_STATEMENT_THRESHOLD;
+
+	private static volatile boolean queryCacheEnabled = false;
+
+	private static volatile int queryCacheSize = DEFAULT_QUERY_CACHE_SIZE;
+
 	private ConversationManager() {
 
 	}
@@ -36,25 +93,122 @@ public class ConversationManager {
 	 * 
 	 * @return - a new random generated {@linkUUID} to be used as a conversation
 	 *         id.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this manager has been shut down.
 	 */
 	public static UUID createConversation() {
+		if (!acceptingConversations)
+			throw new IllegalStateException(
+					"ConversationManager has been shut down, cannot create new conversations");
+
 		UUID conversationId = UUID.randomUUID();
 
-		Session sessionForConversation = sessionFactory.openSession();
+		ConversationInterceptor interceptor = null;
+		Session sessionForConversation;
+
+		if (statementAccountingEnabled || queryCacheEnabled) {
+			// Wrap the configured interceptor so it keeps being called
+			interceptor = statementAccountingEnabled ? new ConversationInterceptor(
+					conversationId, sessionFactory.getInterceptor(),
+					repeatedStatementThreshold)
+					: new ConversationInterceptor(conversationId,
+							sessionFactory.getInterceptor());
+			sessionForConversation = sessionFactory.withOptions()
+					.interceptor(interceptor).openSession();
+		} else {
+			sessionForConversation = sessionFactory.openSession();
+		}
+
+		if (queryCacheEnabled)
+			interceptor.setQueryCache(new ConversationQueryCache(
+					sessionForConversation, sessionFactory, queryCacheSize));
 
-		conversationMap.put(conversationId, sessionForConversation);
+		synchronized (lifecycleLock) {
+			if (!acceptingConversations) {
+				sessionForConversation.close();
+				throw new IllegalStateException(
+						"ConversationManager has been shut down, cannot create new conversations");
+			}
+
+			conversationMap.put(conversationId, new Conversation(
+					sessionForConversation, interceptor));
+		}
 
 		return conversationId;
 	}
 
 	public static Session getSessionFromConversation(UUID conversationId) {
 
-		return conversationMap.get(conversationId);
+		Conversation conversation = conversationMap.get(conversationId);
+
+		return conversation == null ? null : conversation.getSession();
+	}
+
+	/**
+	 * Retrieves the {@link ConversationInterceptor} installed on the
+	 * {@link Session} of the conversation.
+	 * 
+	 * @param conversationId
+	 * @return the interceptor or <code>null</code> if the conversation does not
+	 *         exist or was created without statement accounting nor query
+	 *         cache.
+	 */
+	static ConversationInterceptor getInterceptorFromConversation(
+			UUID conversationId) {
+
+		Conversation conversation = conversationMap.get(conversationId);
+
+		return conversation == null ? null : conversation.getInterceptor();
+	}
+
+	/**
+	 * Retrieves the {@link ConversationQueryCache} living alongside the
+	 * {@link Session} of the conversation.
+	 * 
+	 * @param conversationId
+	 * @return the query cache or <code>null</code> if the conversation does
+	 *         not exist or was created without query cache.
+	 */
+	public static ConversationQueryCache getQueryCacheFromConversation(
+			UUID conversationId) {
+
+		ConversationInterceptor interceptor = getInterceptorFromConversation(conversationId);
+
+		return interceptor == null ? null : interceptor.getQueryCache();
+	}
+
+	/**
+	 * Notifies the conversation that a request bound to it starts being
+	 * processed.
+	 * 
+	 * @param conversationId
+	 */
+	public static void beginRequest(UUID conversationId) {
+
+		ConversationInterceptor interceptor = getInterceptorFromConversation(conversationId);
+
+		if (interceptor != null)
+			interceptor.beginRequest();
+	}
+
+	/**
+	 * Notifies the conversation that a request bound to it has been processed.
+	 * 
+	 * @param conversationId
+	 */
+	public static void endRequest(UUID conversationId) {
+
+		ConversationInterceptor interceptor = getInterceptorFromConversation(conversationId);
+
+		if (interceptor != null)
+			interceptor.endRequest();
 	}
 
 	/**
 	 * Ends the conversation identified by the {@link UUID} provided. It also
-	 * closes the {@link Session} mapped by such id.
+	 * closes the {@link Session} mapped by such id. Does nothing if the
+	 * conversation has already ended, e.g. by {@link #shutdown(long, TimeUnit)}.
 	 * 
 	 * @see Session#close()
 	 * 
@@ -62,7 +216,181 @@ public class ConversationManager {
 	 */
 	public static void endConversation(UUID conversationId) {
 
-		conversationMap.remove(conversationId).close();
+		Conversation conversation = conversationMap.remove(conversationId);
+
+		if (conversation != null)
+			conversation.getSession().close();
+	}
+
+	/**
+	 * <p>
+	 * Stops accepting new conversations and closes every {@link Session} still
+	 * mapped by this manager. Sessions are closed in parallel and this method
+	 * waits at most the given timeout for them to finish.
+	 * </p>
+	 * 
+	 * <p>
+	 * Sessions whose close did not complete before the deadline are abandoned
+	 * i.e. they are left to the connection pool timeouts. Sessions whose close
+	 * threw an exception are logged and reported as failed.
+	 * </p>
+	 * 
+	 * @param timeout
+	 *            - maximum time to wait for the sessions to be closed.
+	 * @param unit
+	 *            - unit of the timeout argument.
+	 * @return a {@link ShutdownReport} with the number of closed, failed and
+	 *         abandoned sessions.
+	 */
+	public static ShutdownReport shutdown(long timeout, TimeUnit unit) {
+		List<Session> sessions = new ArrayList<Session>();
+
+		synchronized (lifecycleLock) {
+			acceptingConversations = false;
+
+			for (UUID conversationId : new ArrayList<UUID>(
+					conversationMap.keySet())) {
+				Conversation conversation = conversationMap
+						.remove(conversationId);
+				if (conversation != null)
+					sessions.add(conversation.getSession());
+			}
+		}
+
+		if (sessions.isEmpty())
+			return new ShutdownReport(0, 0, 0);
+
+		log.info("Closing {} conversation sessions", sessions.size());
+
+		final AtomicInteger closed = new AtomicInteger();
+
+		final AtomicInteger failed = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(sessions.size(), MAX_SHUTDOWN_THREADS),
+				new ShutdownThreadFactory());
+
+		for (final Session session : sessions) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (session.isOpen())
+							session.close();
+						closed.incrementAndGet();
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+						log.warn("Could not close conversation session", e);
+					}
+				}
+			});
+		}
+
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		executor.shutdownNow();
+
+		int closedCount = closed.get();
+		int failedCount = failed.get();
+
+		return new ShutdownReport(closedCount, failedCount, sessions.size()
+				- closedCount - failedCount);
+	}
+
+	/**
+	 * Whether this manager creates new conversations.
+	 * 
+	 * @return <code>false</code> after {@link #shutdown(long, TimeUnit)} has
+	 *         been called, <code>true</code> otherwise.
+	 */
+	public static boolean isAcceptingConversations() {
+		return acceptingConversations;
+	}
+
+	/**
+	 * Whether a {@link ConversationInterceptor} is installed on the
+	 * {@link Session}s of new conversations.
+	 * 
+	 * @return <code>true</code> if statement accounting is enabled.
+	 */
+	public static boolean isStatementAccountingEnabled() {
+		return statementAccountingEnabled;
+	}
+
+	/**
+	 * Enables or disables the installation of a {@link ConversationInterceptor}
+	 * on the {@link Session}s of conversations created afterwards.
+	 * 
+	 * @param statementAccountingEnabled
+	 */
+	public static void setStatementAccountingEnabled(
+			boolean statementAccountingEnabled) {
+		ConversationManager.statementAccountingEnabled = statementAccountingEnabled;
+	}
+
+	/**
+	 * @return the number of times a statement can be prepared within a request
+	 *         before being reported. Defaults to
+	 *         {@link #DEFAULT_REPEATED_STATEMENT_THRESHOLD}.
+	 */
+	public static int getRepeatedStatementThreshold() {
+		return repeatedStatementThreshold;
+	}
+
+	/**
+	 * Sets the number of times a statement can be prepared within a request
+	 * before being reported to {@link ConversationStatistics}.
+	 * 
+	 * @param repeatedStatementThreshold
+	 */
+	public static void setRepeatedStatementThreshold(
+			int repeatedStatementThreshold) {
+		ConversationManager.repeatedStatementThreshold = repeatedStatementThreshold;
+	}
+
+	/**
+	 * Whether a {@link ConversationQueryCache} is created for new
+	 * conversations.
+	 * 
+	 * @return <code>true</code> if the query cache is enabled.
+	 */
+	public static boolean isQueryCacheEnabled() {
+		return queryCacheEnabled;
+	}
+
+	/**
+	 * Enables or disables the {@link ConversationQueryCache} for conversations
+	 * created afterwards.
+	 * 
+	 * @param queryCacheEnabled
+	 */
+	public static void setQueryCacheEnabled(boolean queryCacheEnabled) {
+		ConversationManager.queryCacheEnabled = queryCacheEnabled;
+	}
+
+	/**
+	 * @return the maximum number of query results kept by each
+	 *         {@link ConversationQueryCache}. Defaults to
+	 *         {@link #DEFAULT_QUERY_CACHE_SIZE}.
+	 */
+	public static int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of query results kept by each
+	 * {@link ConversationQueryCache} created afterwards.
+	 * 
+	 * @param queryCacheSize
+	 */
+	public static void setQueryCacheSize(int queryCacheSize) {
+		ConversationManager.queryCacheSize = queryCacheSize;
 	}
 
 	/**
@@ -77,7 +405,9 @@ public class ConversationManager {
 
 	/**
 	 * Set the {@link SessionFactoryImplementor} that will be used to create
-	 * {@link Session}s for conversations created.
+	 * {@link Session}s for conversations created. Setting a new
+	 * {@link SessionFactoryImplementor} makes this manager accept new
+	 * conversations again.
 	 * 
 	 * @param sessionFactory
 	 *            - the {@link SessionFactoryImplementor} to be used to create
@@ -85,7 +415,77 @@ public class ConversationManager {
 	 */
 	public static void setSessionFactory(
 			SessionFactoryImplementor sessionFactory) {
-		ConversationManager.sessionFactory = sessionFactory;
+		synchronized (lifecycleLock) {
+			ConversationManager.sessionFactory = sessionFactory;
+			ConversationManager.acceptingConversations = true;
+		}
+	}
+
+	/**
+	 * Outcome of {@link ConversationManager#shutdown(long, TimeUnit)}.
+	 */
+	public static class ShutdownReport {
+
+		private final int closedCount;
+
+		private final int failedCount;
+
+		private final int abandonedCount;
+
+		public ShutdownReport(int closedCount, int failedCount,
+				int abandonedCount) {
+			this.closedCount = closedCount;
+			this.failedCount = failedCount;
+			this.abandonedCount = abandonedCount;
+		}
+
+		/**
+		 * @return the number of sessions closed before the deadline.
+		 */
+		public int getClosedCount() {
+			return closedCount;
+		}
+
+		/**
+		 * @return the number of sessions whose close threw an exception before
+		 *         the deadline.
+		 */
+		public int getFailedCount() {
+			return failedCount;
+		}
+
+		/**
+		 * @return the number of sessions whose close did not finish before the
+		 *         deadline.
+		 */
+		public int getAbandonedCount() {
+			return abandonedCount;
+		}
+
+		@Override
+		public String toString() {
+			return "closed=" + closedCount + ", failed=" + failedCount
+					+ ", abandoned=" + abandonedCount;
+		}
+
+	}
+
+	/**
+	 * Creates daemon threads so a stuck {@link Session#close()} does not
+	 * prevent the JVM from exiting.
+	 */
+	private static class ShutdownThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,
+					"conversation-shutdown-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
 	}
 
 }
@@ -0,0 +1,405 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Hibernate;
+import org.hibernate.MappingException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEvent;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Bounded cache of HQL query results living alongside the {@link Session} of a
+ * conversation. Results are keyed by the query string and its positional
+ * parameters and are evicted in least recently used order.
+ * </p>
+ *
+ * <p>
+ * Each entry remembers the query spaces (tables) of its query. When the
+ * conversation {@link Session} flushes changes to entities or collections
+ * mapped to any of those spaces, the entry is invalidated by the
+ * {@link ConversationInterceptor}. Changes not made through the
+ * {@link Session}, such as bulk HQL updates or other transactions, are not
+ * detected; call {@link #clear()} if needed.
+ * </p>
+ *
+ * <p>
+ * While the {@link Session} holds changes saved, deleted or detected by the
+ * {@link ConversationInterceptor} but not flushed yet, queries bypass the
+ * cache. Modifications of managed entities are only detected when the
+ * {@link Session} flushes, so before a cached result is returned the
+ * {@link Session} is auto-flushed for its query spaces, as Hibernate does
+ * before executing a query. See {@link #list(String, Object...)} for the
+ * cases where this does not happen.
+ * </p>
+ *
+ * <p>
+ * The cache is cleared when a transaction of the {@link Session} is rolled
+ * back, and a cached result is discarded if any of its entities is no longer
+ * managed by the {@link Session} e.g. after {@link Session#clear()} or
+ * {@link Session#evict(Object)}.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public class ConversationQueryCache {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ConversationQueryCache.class);
+
+	private final Session session;
+
+	private final SessionFactoryImplementor sessionFactory;
+
+	private final Map<QueryKey, CachedResult> results;
+
+	private final Set<Serializable> changedSpaces = new HashSet<Serializable>();
+
+	private boolean changedUnknownSpaces;
+
+	private boolean pendingChanges;
+
+	private long hitCount;
+
+	private long missCount;
+
+	/**
+	 * @param session
+	 *            - the {@link Session} of the conversation.
+	 * @param sessionFactory
+	 *            - the factory that created the {@link Session}, used to
+	 *            resolve query spaces.
+	 * @param maxEntries
+	 *            - maximum number of query results kept.
+	 */
+	public ConversationQueryCache(Session session,
+			SessionFactoryImplementor sessionFactory, final int maxEntries) {
+		this.session = session;
+		this.sessionFactory = sessionFactory;
+		this.results = new LinkedHashMap<QueryKey, CachedResult>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = -6_402_137_774_521_883_047L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<QueryKey, CachedResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * <p>
+	 * Returns the results of the HQL query, executing it with the conversation
+	 * {@link Session} only if they are not cached.
+	 * </p>
+	 * 
+	 * <p>
+	 * If the {@link Session} is in {@link FlushMode#AUTO} or
+	 * {@link FlushMode#ALWAYS} and within a transaction, it is auto-flushed for
+	 * the query spaces of a cached result before returning it, so unflushed
+	 * modifications of managed entities invalidate it. Otherwise, as well as
+	 * with a {@link Session} that is not an {@link EventSource}, a cached
+	 * result does not reflect those modifications until the {@link Session}
+	 * is flushed.
+	 * </p>
+	 *
+	 * @param hql
+	 *            - the HQL query.
+	 * @param parameters
+	 *            - positional parameters of the query.
+	 * @return a copy of the query results.
+	 */
+	public synchronized List<?> list(String hql, Object... parameters) {
+
+		if (pendingChanges) {
+			log.debug("Session has unflushed changes, bypassing cache for '{}'",
+					hql);
+			return createQuery(hql, parameters).list();
+		}
+
+		QueryKey key = new QueryKey(hql, parameters);
+
+		CachedResult cached = results.get(key);
+
+		if (cached != null && isManaged(cached)) {
+			autoFlush(cached.querySpaces);
+
+			// The flush invalidates the result if it changed its spaces
+			if (results.containsKey(key)) {
+				hitCount++;
+				return new ArrayList<Object>(cached.results);
+			}
+		}
+
+		missCount++;
+
+		List<?> queryResults = createQuery(hql, parameters).list();
+
+		results.put(key, new CachedResult(querySpaces(hql), queryResults,
+				managedEntities(queryResults)));
+
+		return new ArrayList<Object>(queryResults);
+	}
+
+	/**
+	 * Discards all the cached results.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		changedSpaces.clear();
+		changedUnknownSpaces = false;
+		pendingChanges = false;
+	}
+
+	/**
+	 * Records the spaces of an entity saved, updated or deleted by the
+	 * {@link Session}.
+	 *
+	 * @param entity
+	 */
+	synchronized void entityChanged(Object entity) {
+		pendingChanges = true;
+
+		try {
+			changedSpaces.addAll(Arrays.asList(sessionFactory
+					.getEntityPersister(entity.getClass().getName())
+					.getQuerySpaces()));
+		} catch (MappingException e) {
+			changedUnknownSpaces = true;
+		}
+	}
+
+	/**
+	 * Records the spaces of a collection recreated, updated or removed by the
+	 * {@link Session}.
+	 *
+	 * @param collection
+	 */
+	synchronized void collectionChanged(Object collection) {
+		pendingChanges = true;
+
+		if (!(collection instanceof PersistentCollection)
+				|| ((PersistentCollection) collection).getRole() == null) {
+			changedUnknownSpaces = true;
+			return;
+		}
+
+		try {
+			changedSpaces.addAll(Arrays.asList(sessionFactory
+					.getCollectionPersister(
+							((PersistentCollection) collection).getRole())
+					.getCollectionSpaces()));
+		} catch (MappingException e) {
+			changedUnknownSpaces = true;
+		}
+	}
+
+	/**
+	 * Invalidates the results of queries over any space changed since the
+	 * previous flush.
+	 */
+	synchronized void flushed() {
+		pendingChanges = false;
+
+		if (changedUnknownSpaces) {
+			log.debug("Flushed changes to unknown spaces, clearing cache");
+			clear();
+			return;
+		}
+
+		if (changedSpaces.isEmpty())
+			return;
+
+		Iterator<CachedResult> iterator = results.values().iterator();
+
+		while (iterator.hasNext()) {
+			if (!Collections.disjoint(iterator.next().querySpaces,
+					changedSpaces))
+				iterator.remove();
+		}
+
+		changedSpaces.clear();
+	}
+
+	/**
+	 * Discards all the cached results, as they may contain changes flushed
+	 * within the rolled back transaction.
+	 */
+	synchronized void rolledBack() {
+		log.debug("Transaction rolled back, clearing cache");
+		clear();
+	}
+
+	/**
+	 * @return the number of queries answered from the cache.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return the number of queries executed against the database.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return the number of query results currently cached.
+	 */
+	public synchronized int size() {
+		return results.size();
+	}
+
+	private Query createQuery(String hql, Object[] parameters) {
+		Query query = session.createQuery(hql);
+
+		for (int i = 0; i < parameters.length; i++)
+			query.setParameter(i, parameters[i]);
+
+		return query;
+	}
+
+	/**
+	 * Fires the auto-flush event of the {@link Session} for the given query
+	 * spaces, the same way it does before executing a query. Modified managed
+	 * entities are then reported to the {@link ConversationInterceptor} and, if
+	 * they map to any of the spaces, flushed.
+	 */
+	private void autoFlush(Set<Serializable> querySpaces) {
+		if (!(session instanceof EventSource))
+			return;
+
+		EventSource source = (EventSource) session;
+
+		if (source.getFlushMode().lessThan(FlushMode.AUTO)
+				|| !source.isTransactionInProgress())
+			return;
+
+		AutoFlushEvent event = new AutoFlushEvent(querySpaces, source);
+
+		for (AutoFlushEventListener listener : sessionFactory
+				.getServiceRegistry().getService(EventListenerRegistry.class)
+				.getEventListenerGroup(EventType.AUTO_FLUSH).listeners())
+			listener.onAutoFlush(event);
+	}
+
+	/**
+	 * Whether every entity of a cached result is still managed by the
+	 * {@link Session}. If not, the result is discarded.
+	 */
+	private boolean isManaged(CachedResult cached) {
+		for (Object entity : cached.entities) {
+			if (!session.contains(entity)) {
+				log.debug("Cached result holds detached entities, discarding it");
+				results.values().remove(cached);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Collects the entities of the query results, including those inside
+	 * tuples, so they can be checked by {@link #isManaged(CachedResult)}.
+	 */
+	private List<Object> managedEntities(List<?> queryResults) {
+		List<Object> entities = new ArrayList<Object>();
+
+		for (Object row : queryResults) {
+			if (row instanceof Object[]) {
+				for (Object column : (Object[]) row)
+					addIfEntity(column, entities);
+			} else {
+				addIfEntity(row, entities);
+			}
+		}
+
+		return entities;
+	}
+
+	private void addIfEntity(Object value, List<Object> entities) {
+		if (value != null
+				&& sessionFactory.getClassMetadata(Hibernate.getClass(value)) != null)
+			entities.add(value);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Set<Serializable> querySpaces(String hql) {
+		return sessionFactory.getQueryPlanCache()
+				.getHQLQueryPlan(hql, false, Collections.EMPTY_MAP)
+				.getQuerySpaces();
+	}
+
+	/**
+	 * Key of a cached result, made of the query string and its parameters.
+	 */
+	private static class QueryKey {
+
+		private final String hql;
+
+		private final List<Object> parameters;
+
+		QueryKey(String hql, Object[] parameters) {
+			this.hql = hql;
+			this.parameters = Arrays.asList(parameters.clone());
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * hql.hashCode() + parameters.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof QueryKey))
+				return false;
+
+			QueryKey other = (QueryKey) obj;
+
+			return hql.equals(other.hql) && parameters.equals(other.parameters);
+		}
+
+	}
+
+	private static class CachedResult {
+
+		private final Set<Serializable> querySpaces;
+
+		private final List<?> results;
+
+		private final List<Object> entities;
+
+		CachedResult(Set<Serializable> querySpaces, List<?> results,
+				List<Object> entities) {
+			this.querySpaces = querySpaces;
+			this.results = results;
+			this.entities = entities;
+		}
+
+	}
+
+}
@@ -0,0 +1,224 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Session;
+
+/**
+ * <p>
+ * Registry of the SQL statement metrics gathered by the
+ * {@link ConversationInterceptor}s installed on conversation sessions.
+ * </p>
+ *
+ * <p>
+ * It keeps the total of requests and statements accounted, and the statements
+ * most repeated within a single request (the worst offenders), bounded to
+ * {@link #MAX_TRACKED_STATEMENTS} distinct statements.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public class ConversationStatistics {
+
+	/**
+	 * Maximum number of distinct repeated statements kept.
+	 */
+	public static final int MAX_TRACKED_STATEMENTS = 100;
+
+	private static final AtomicLong requestCount = new AtomicLong();
+
+	private static final AtomicLong statementCount = new AtomicLong();
+
+	private static final Map<String, RepeatedStatement> repeatedStatements = new HashMap<String, RepeatedStatement>();
+
+	private static final Comparator<RepeatedStatement> WORST_FIRST = new Comparator<RepeatedStatement>() {
+		@Override
+		public int compare(RepeatedStatement first, RepeatedStatement second) {
+			return Integer.compare(second.getMaxCount(), first.getMaxCount());
+		}
+	};
+
+	private ConversationStatistics() {
+
+	}
+
+	/**
+	 * Accounts a processed request.
+	 *
+	 * @param statements
+	 *            - number of statements prepared during the request.
+	 */
+	static void recordRequest(int statements) {
+		requestCount.incrementAndGet();
+		statementCount.addAndGet(statements);
+	}
+
+	/**
+	 * Records a statement repeated above the threshold within one request. If
+	 * the registry is full, the least repeated statement is evicted.
+	 *
+	 * @param sql
+	 *            - the repeated statement.
+	 * @param count
+	 *            - times the statement was prepared in the request.
+	 * @param conversationId
+	 *            - the conversation that processed the request.
+	 */
+	static synchronized void recordRepeatedStatement(String sql, int count,
+			UUID conversationId) {
+		RepeatedStatement statement = repeatedStatements.get(sql);
+
+		if (statement == null) {
+			if (repeatedStatements.size() >= MAX_TRACKED_STATEMENTS) {
+				RepeatedStatement least = Collections.max(
+						repeatedStatements.values(), WORST_FIRST);
+
+				if (least.getMaxCount() >= count)
+					return;
+
+				repeatedStatements.remove(least.getSql());
+			}
+
+			statement = new RepeatedStatement(sql);
+			repeatedStatements.put(sql, statement);
+		}
+
+		statement.record(count, conversationId);
+	}
+
+	/**
+	 * Retrieves the statements most repeated within a single request, worst
+	 * first.
+	 *
+	 * @param max
+	 *            - maximum number of statements to return.
+	 * @return a snapshot of the worst offenders.
+	 */
+	public static synchronized List<RepeatedStatement> getWorstOffenders(
+			int max) {
+		List<RepeatedStatement> offenders = new ArrayList<RepeatedStatement>();
+
+		for (RepeatedStatement statement : repeatedStatements.values())
+			offenders.add(statement.copy());
+
+		Collections.sort(offenders, WORST_FIRST);
+
+		return offenders.subList(0, Math.min(max, offenders.size()));
+	}
+
+	/**
+	 * Retrieves the number of statements prepared by the {@link Session} of a
+	 * conversation since it was created.
+	 *
+	 * @param conversationId
+	 *            - the conversation id.
+	 * @return the number of statements or <code>-1</code> if the conversation
+	 *         does not exist or was created without statement accounting.
+	 */
+	public static long getStatementCount(UUID conversationId) {
+		ConversationInterceptor interceptor = ConversationManager
+				.getInterceptorFromConversation(conversationId);
+
+		if (interceptor == null || !interceptor.isStatementAccountingEnabled())
+			return -1;
+
+		return interceptor.getConversationStatementCount();
+	}
+
+	/**
+	 * @return the number of requests accounted.
+	 */
+	public static long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the number of statements prepared in all accounted requests.
+	 */
+	public static long getStatementCount() {
+		return statementCount.get();
+	}
+
+	/**
+	 * Discards all the gathered metrics.
+	 */
+	public static synchronized void clear() {
+		requestCount.set(0);
+		statementCount.set(0);
+		repeatedStatements.clear();
+	}
+
+	/**
+	 * A statement prepared repeatedly within single requests.
+	 */
+	public static class RepeatedStatement {
+
+		private final String sql;
+
+		private int maxCount;
+
+		private long occurrences;
+
+		private UUID lastConversationId;
+
+		RepeatedStatement(String sql) {
+			this.sql = sql;
+		}
+
+		void record(int count, UUID conversationId) {
+			this.maxCount = Math.max(this.maxCount, count);
+			this.occurrences++;
+			this.lastConversationId = conversationId;
+		}
+
+		RepeatedStatement copy() {
+			RepeatedStatement copy = new RepeatedStatement(sql);
+			copy.maxCount = maxCount;
+			copy.occurrences = occurrences;
+			copy.lastConversationId = lastConversationId;
+			return copy;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return the highest number of times the statement was prepared in a
+		 *         single request.
+		 */
+		public int getMaxCount() {
+			return maxCount;
+		}
+
+		/**
+		 * @return the number of requests in which the statement was repeated
+		 *         above the threshold.
+		 */
+		public long getOccurrences() {
+			return occurrences;
+		}
+
+		/**
+		 * @return the last conversation in which the statement was repeated.
+		 */
+		public UUID getLastConversationId() {
+			return lastConversationId;
+		}
+
+		@Override
+		public String toString() {
+			return maxCount + "x (" + occurrences + " requests): " + sql;
+		}
+
+	}
+
+}
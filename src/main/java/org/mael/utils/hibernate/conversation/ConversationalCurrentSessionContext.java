@@ -6,6 +6,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 import org.hibernate.context.spi.CurrentSessionContext;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.metamodel.SessionFactoryBuilder;
@@ -16,6 +17,14 @@ import org.hibernate.metamodel.SessionFactoryBuilder;
  * from the thread-bound {@link HttpServletRequest} in the
  * {@link ThreadedRequestRegistry}. //Woot.
  * 
+ * <p>
+ * On paths configured as stateless in the
+ * {@link OpenSessionInViewInsideConversationFilter}, a short-lived
+ * {@link StatelessSession} is provided through
+ * {@link #currentStatelessSession()} instead of the conversation
+ * {@link Session}.
+ * </p>
+ * 
  * @author ElderMael
  * 
  */
@@ -50,12 +59,40 @@ public class ConversationalCurrentSessionContext implements
 	public Session currentSession() throws HibernateException {
 		HttpServletRequest request = lookUpRequest();
 
+		if (request
+				.getAttribute(OpenSessionInViewInsideConversationFilter.STATELESS_SESSION_ATTRIBUTE_NAME) != null)
+			throw new HibernateException(
+					"Request is processed in stateless mode, use ConversationalCurrentSessionContext.currentStatelessSession()");
+
 		UUID conversationId = (UUID) request
 				.getAttribute(OpenSessionInViewInsideConversationFilter.ACTIVE_CONVERSATION_ATTRIBUTE_NAME);
 
 		return ConversationManager.getSessionFromConversation(conversationId);
 	}
 
+	/**
+	 * Retrieves the {@link StatelessSession} opened for the current request by
+	 * the {@link OpenSessionInViewInsideConversationFilter} on stateless paths.
+	 * It is closed when the request has been processed.
+	 * 
+	 * @return the {@link StatelessSession} of the current request.
+	 * 
+	 * @throws HibernateException
+	 *             if the current request is not processed in stateless mode.
+	 */
+	public static StatelessSession currentStatelessSession()
+			throws HibernateException {
+		StatelessSession statelessSession = (StatelessSession) lookUpRequest()
+				.getAttribute(
+						OpenSessionInViewInsideConversationFilter.STATELESS_SESSION_ATTRIBUTE_NAME);
+
+		if (statelessSession == null)
+			throw new HibernateException(
+					"Request is not processed in stateless mode");
+
+		return statelessSession;
+	}
+
 	/**
 	 * Looks up the thread-bound {@link HttpServletRequest} in the
 	 * {@link ThreadedRequestRegistry}.
@@ -65,7 +102,7 @@ public class ConversationalCurrentSessionContext implements
 	 * @throws IllegalStateException
 	 *             if no request is bound to the calling thread.
 	 */
-	private HttpServletRequest lookUpRequest() {
+	private static HttpServletRequest lookUpRequest() {
 
 		HttpServletRequest request = ThreadedRequestRegistry
 				.getCurrentThreadRequest();
@@ -0,0 +1,51 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>
+ * Callback used by {@link OpenSessionInViewInsideConversationFilter} when a
+ * request carries a conversation that is not owned by the node processing it,
+ * either because the cookie route names another node or because the
+ * conversation is unknown to the local {@link ConversationManager}. Without
+ * handler, the filter creates a new conversation on the local node.
+ * </p>
+ *
+ * <p>
+ * Implementations may redirect or reject the request, or return the id of a
+ * conversation to be used instead. A returned conversation must exist in the
+ * local {@link ConversationManager}; if it is not the one carried by the
+ * request, the filter replaces the conversation cookie.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public interface ForeignConversationHandler {
+
+	/**
+	 * Handles a request for a conversation this node does not own.
+	 *
+	 * @param conversationId
+	 *            - the conversation id found in the cookie.
+	 * @param request
+	 *            - the request processed by the filter.
+	 * @param response
+	 *            - the response processed by the filter.
+	 * @return the conversation id to bind to the request or <code>null</code>
+	 *         if the response has been handled and the filter chain must not
+	 *         proceed.
+	 * @throws ServletException
+	 *             also thrown by the filter if the returned conversation is
+	 *             unknown to the {@link ConversationManager}.
+	 */
+	UUID handleForeignConversation(RoutedConversationId conversationId,
+			HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException;
+
+}
@@ -2,6 +2,7 @@ package org.mael.utils.hibernate.conversation;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
@@ -10,9 +11,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.mael.utils.hibernate.conversation.ConversationManager.ShutdownReport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.util.StringUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
 
 /**
  * <p>
@@ -32,6 +39,32 @@ import org.springframework.web.filter.OncePerRequestFilter;
  * invariably.
  * </p>
  * 
+ * <p>
+ * If a {@link #nodeRoute} is configured, it is appended to the conversation id
+ * stored in the cookie (see {@link RoutedConversationId}) so a sticky load
+ * balancer can route on it. Cookies without route are treated as routed to
+ * this node and rewritten with its route. Requests carrying a conversation not
+ * owned by this node are passed to the {@link ForeignConversationHandler} or,
+ * if none is configured, get a new conversation on this node e.g. after
+ * failover. Requests for conversations routed to another node can be rejected
+ * instead with {@link #foreignConversationStatus} by enabling
+ * {@link #rejectForeignConversations}.
+ * </p>
+ * 
+ * <p>
+ * Requests whose path matches one of the {@link #statelessPaths} get a
+ * short-lived {@link StatelessSession}, available through
+ * {@link ConversationalCurrentSessionContext#currentStatelessSession()}, so bulk
+ * reads do not fill the conversation {@link Session}. Such requests are only
+ * bound to a conversation if they carry the cookie of one owned by this node;
+ * otherwise no conversation is created nor rejected.
+ * </p>
+ * 
+ * <p>
+ * When the filter is destroyed, the {@link ConversationManager} is shut down
+ * and every open conversation is closed.
+ * </p>
+ * 
  * @author ElderMael
  * 
  */
@@ -48,6 +81,24 @@ public class OpenSessionInViewInsideConversationFilter extends
 	 */
 	public static final String ACTIVE_CONVERSATION_ATTRIBUTE_NAME = "hibernate.conversation.id";
 
+	/**
+	 * Request attribute name for the route of the node owning the
+	 * conversation.
+	 */
+	public static final String ACTIVE_CONVERSATION_ROUTE_ATTRIBUTE_NAME = "hibernate.conversation.route";
+
+	/**
+	 * Request attribute name for the {@link StatelessSession} opened on
+	 * stateless paths.
+	 */
+	public static final String STATELESS_SESSION_ATTRIBUTE_NAME = "hibernate.conversation.stateless";
+
+	/**
+	 * Default time in milliseconds to wait for conversations to be closed when
+	 * this filter is destroyed.
+	 */
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 10_000L;
+
 	/**
 	 * Logger to be used by subclasses.
 	 */
@@ -76,15 +127,119 @@ public class OpenSessionInViewInsideConversationFilter extends
 	 */
 	private boolean shouldNotFilterAsyncDispatch = true;
 
+	/**
+	 * Time in milliseconds to wait for the open conversations to be closed when
+	 * this filter is destroyed. Defaults to {@link #DEFAULT_SHUTDOWN_TIMEOUT}.
+	 */
+	private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+
+	/**
+	 * Route identifying this node in a cluster. Defaults to <code>null</code>
+	 * i.e. the cookie only contains the conversation id.
+	 */
+	private String nodeRoute;
+
+	/**
+	 * Handler for conversations not owned by this node. If <code>null</code>,
+	 * a new conversation is created on this node unless
+	 * {@link #rejectForeignConversations} is enabled.
+	 */
+	private ForeignConversationHandler foreignConversationHandler;
+
+	/**
+	 * Whether requests carrying a conversation routed to another node are
+	 * rejected with {@link #foreignConversationStatus} when no
+	 * {@link #foreignConversationHandler} is configured. Defaults to
+	 * <code>false</code> i.e. a new conversation is created on this node and
+	 * the cookie is replaced, so clients are not locked out when the owning
+	 * node is gone.
+	 */
+	private boolean rejectForeignConversations = false;
+
+	/**
+	 * Error status sent for requests carrying a conversation routed to another
+	 * node when {@link #rejectForeignConversations} is enabled. Defaults to
+	 * {@link HttpServletResponse#SC_SERVICE_UNAVAILABLE}.
+	 */
+	private int foreignConversationStatus = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+
+	/**
+	 * Whether the SQL statements prepared by conversation {@link Session}s are
+	 * counted. Defaults to <code>false</code>.
+	 * 
+	 * @see ConversationInterceptor
+	 */
+	private boolean statementAccountingEnabled = false;
+
+	/**
+	 * Number of times a statement can be prepared within a request before
+	 * being reported. Defaults to
+	 * {@link ConversationManager#DEFAULT_REPEATED_STATEMENT_THRESHOLD}.
+	 */
+	private int repeatedStatementThreshold = ConversationManager.DEFAULT_REPEATED_STATEMENT_THRESHOLD;
+
+	/**
+	 * Whether a {@link ConversationQueryCache} is created for each
+	 * conversation. Defaults to <code>false</code>.
+	 */
+	private boolean queryCacheEnabled = false;
+
+	/**
+	 * Maximum number of query results kept by each conversation. Defaults to
+	 * {@link ConversationManager#DEFAULT_QUERY_CACHE_SIZE}.
+	 */
+	private int queryCacheSize = ConversationManager.DEFAULT_QUERY_CACHE_SIZE;
+
+	/**
+	 * Ant-style path patterns, relative to the context path, of the requests
+	 * that get a {@link StatelessSession}. Defaults to none.
+	 */
+	private String[] statelessPaths = new String[0];
+
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+	/**
+	 * Passes the statement accounting and query cache configuration to the
+	 * {@link ConversationManager}.
+	 */
 	@Override
 	protected void initFilterBean() throws ServletException {
+		ConversationManager
+				.setStatementAccountingEnabled(this.statementAccountingEnabled);
+		ConversationManager
+				.setRepeatedStatementThreshold(this.repeatedStatementThreshold);
+		ConversationManager.setQueryCacheEnabled(this.queryCacheEnabled);
+		ConversationManager.setQueryCacheSize(this.queryCacheSize);
+	}
 
+	/**
+	 * Shuts down the {@link ConversationManager}, closing all the open
+	 * conversations in parallel within {@link #shutdownTimeout} milliseconds.
+	 * 
+	 * @see ConversationManager#shutdown(long, TimeUnit)
+	 */
+	@Override
+	public void destroy() {
+		ShutdownReport report = ConversationManager.shutdown(
+				this.shutdownTimeout, TimeUnit.MILLISECONDS);
+
+		if (report.getFailedCount() > 0 || report.getAbandonedCount() > 0) {
+			log.warn(
+					"Conversations shut down with {} sessions failed to close and {} abandoned ({})",
+					new Object[] { report.getFailedCount(),
+							report.getAbandonedCount(), report });
+		} else {
+			log.info("Conversations shut down ({})", report);
+		}
 	}
 
 	/**
 	 * <p>
 	 * Will check in the request for a conversation id. If not found, it will
-	 * create a new conversation and register it.
+	 * create a new conversation and register it, unless the request is on a
+	 * stateless path, where only a conversation owned by this node is bound.
 	 * </p>
 	 */
 	@Override
@@ -92,19 +247,64 @@ public class OpenSessionInViewInsideConversationFilter extends
 			HttpServletResponse response, FilterChain filterChain)
 			throws ServletException, IOException {
 
-		UUID conversationId = lookupConversationOrCreateIfNecessary(request,
-				response);
+		if (!ConversationManager.isAcceptingConversations()) {
+			log.debug("Conversations are shut down, rejecting request '{}'",
+					request);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		boolean statelessPath = isStatelessPath(request);
 
-		log.debug("Binding conversation '{}' to request '{}'", conversationId,
-				request);
-		bindConversation(conversationId, request);
+		RoutedConversationId cookieId = lookupConversationIdOnCookies(request);
+
+		UUID conversationId = null;
+
+		if (statelessPath
+				&& (cookieId == null || !isOwnedByThisNode(cookieId))) {
+			log.debug("Stateless request '{}' without local conversation",
+					request);
+			ThreadedRequestRegistry.setCurrentRequest(request);
+		} else {
+			conversationId = lookupConversationOrCreateIfNecessary(cookieId,
+					request, response);
+
+			if (conversationId == null) {
+				log.debug("Request '{}' handled as foreign conversation",
+						request);
+				return;
+			}
+
+			log.debug("Binding conversation '{}' to request '{}'",
+					conversationId, request);
+			bindConversation(conversationId, request);
+		}
+
+		StatelessSession statelessSession = null;
 
 		try {
+			if (statelessPath) {
+				log.debug("Binding stateless session to request '{}'", request);
+				statelessSession = ConversationManager.getSessionFactory()
+						.openStatelessSession();
+				request.setAttribute(STATELESS_SESSION_ATTRIBUTE_NAME,
+						statelessSession);
+			}
+
 			filterChain.doFilter(request, response);
 		} finally {
-			log.debug("Unbinding conversation '{}' from request '{}'",
-					conversationId, request);
-			unbindConversation(conversationId, request);
+			if (statelessSession != null) {
+				request.removeAttribute(STATELESS_SESSION_ATTRIBUTE_NAME);
+				statelessSession.close();
+			}
+
+			if (conversationId == null) {
+				ThreadedRequestRegistry.setCurrentRequest(null);
+			} else {
+				log.debug("Unbinding conversation '{}' from request '{}'",
+						conversationId, request);
+				unbindConversation(conversationId, request);
+			}
 		}
 
 	}
@@ -125,8 +325,14 @@ public class OpenSessionInViewInsideConversationFilter extends
 
 		request.setAttribute(ACTIVE_CONVERSATION_ATTRIBUTE_NAME, conversationId);
 
+		if (this.nodeRoute != null)
+			request.setAttribute(ACTIVE_CONVERSATION_ROUTE_ATTRIBUTE_NAME,
+					this.nodeRoute);
+
 		// Register conversation to be thread-bound
 		ThreadedRequestRegistry.setCurrentRequest(request);
+
+		ConversationManager.beginRequest(conversationId);
 	}
 
 	/**
@@ -141,13 +347,42 @@ public class OpenSessionInViewInsideConversationFilter extends
 	private void unbindConversation(UUID conversationId,
 			HttpServletRequest request) {
 
+		ConversationManager.endRequest(conversationId);
+
 		request.removeAttribute(ACTIVE_CONVERSATION_ATTRIBUTE_NAME);
 
+		if (this.nodeRoute != null)
+			request.removeAttribute(ACTIVE_CONVERSATION_ROUTE_ATTRIBUTE_NAME);
+
 		// Unregister the request to be gc'ed.
 		ThreadedRequestRegistry.setCurrentRequest(null);
 
 	}
 
+	/**
+	 * Whether the path of the request matches one of the
+	 * {@link #statelessPaths}.
+	 * 
+	 * @param request
+	 *            - the request processed by this filter.
+	 * @return <code>true</code> if the request must get a
+	 *         {@link StatelessSession}.
+	 */
+	private boolean isStatelessPath(HttpServletRequest request) {
+
+		if (this.statelessPaths.length == 0)
+			return false;
+
+		String path = this.urlPathHelper.getPathWithinApplication(request);
+
+		for (String pattern : this.statelessPaths) {
+			if (this.pathMatcher.match(pattern, path))
+				return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * Should the filter must process on async dispatches.
 	 * 
@@ -162,23 +397,158 @@ public class OpenSessionInViewInsideConversationFilter extends
 	 * 
 	 * Will look for the cookie containing the conversation id. If no cookie is
 	 * found, it will create a new conversation and will add a cookie to the
-	 * response containing such id.
+	 * response containing such id. If the conversation found is not owned by
+	 * this node, it is handled by
+	 * {@link #handleForeignConversation(RoutedConversationId, HttpServletRequest, HttpServletResponse)}
+	 * . A cookie of a conversation owned by this node but stored without route
+	 * is rewritten with {@link #nodeRoute}.
 	 * 
+	 * @param cookieId
+	 *            - the id found in the conversation cookie, <code>null</code>
+	 *            if the request has no such cookie.
 	 * @param request
 	 *            - request processed by this filter
 	 * @param response
 	 *            - response processed by this filter.
 	 * @return - the conversation id found in the cookie or a newly created one.
+	 *         <code>null</code> if the request has already been handled.
 	 */
 	private UUID lookupConversationOrCreateIfNecessary(
-			HttpServletRequest request, HttpServletResponse response) {
-		UUID conversationId = null;
+			RoutedConversationId cookieId, HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+
+		if (cookieId == null)
+			return createConversationAndStoreCookie(request, response);
+
+		if (!isOwnedByThisNode(cookieId))
+			return handleForeignConversation(cookieId, request, response);
+
+		if (this.nodeRoute != null && cookieId.getRoute() == null) {
+			log.debug("Adding route '{}' to conversation cookie '{}'",
+					this.nodeRoute, cookieId);
+			storeConversationCookie(cookieId.getConversationId(), response);
+		}
+
+		return cookieId.getConversationId();
+	}
+
+	/**
+	 * A conversation is owned by this node if it is routed to it (see
+	 * {@link #isRoutedToThisNode(RoutedConversationId)}) and the local
+	 * {@link ConversationManager} holds a {@link Session} for it.
+	 * 
+	 * @param cookieId
+	 *            - the id found in the conversation cookie.
+	 * @return <code>true</code> if this node owns the conversation.
+	 */
+	private boolean isOwnedByThisNode(RoutedConversationId cookieId) {
+
+		if (!isRoutedToThisNode(cookieId))
+			return false;
+
+		return ConversationManager.getSessionFromConversation(cookieId
+				.getConversationId()) != null;
+	}
+
+	/**
+	 * Whether the route in the cookie matches {@link #nodeRoute}. A cookie
+	 * without route (e.g. stored before a route was configured) is considered
+	 * routed to this node.
+	 * 
+	 * @param cookieId
+	 *            - the id found in the conversation cookie.
+	 * @return <code>true</code> if the cookie has no route or it equals
+	 *         {@link #nodeRoute}.
+	 */
+	private boolean isRoutedToThisNode(RoutedConversationId cookieId) {
+
+		if (cookieId.getRoute() == null)
+			return true;
+
+		return cookieId.getRoute().equals(this.nodeRoute);
+	}
+
+	/**
+	 * <p>
+	 * Delegates to the {@link #foreignConversationHandler} if any. The
+	 * conversation id it returns must be known to the {@link ConversationManager}
+	 * ; if it differs from the one in the cookie, the cookie is replaced.
+	 * </p>
+	 * 
+	 * <p>
+	 * Without handler, a new conversation is created on this node and the
+	 * cookie is replaced, as the conversation is lost here (e.g. after a
+	 * restart) or its node may be gone (e.g. after failover). If
+	 * {@link #rejectForeignConversations} is enabled, a conversation routed to
+	 * another node is rejected instead with {@link #foreignConversationStatus},
+	 * leaving the cookie untouched so the owning node can still serve it.
+	 * </p>
+	 * 
+	 * @param cookieId
+	 *            - the id found in the conversation cookie.
+	 * @param request
+	 *            - the request processed by this filter.
+	 * @param response
+	 *            - the response processed by this filter.
+	 * @return the conversation id to bind or <code>null</code> if the request
+	 *         has been handled.
+	 */
+	private UUID handleForeignConversation(RoutedConversationId cookieId,
+			HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		log.debug("Conversation '{}' in request {} is not owned by node '{}'",
+				cookieId, request, this.nodeRoute);
 
-		conversationId = lookupConversationIdOnCookies(request);
+		if (this.foreignConversationHandler != null)
+			return bindableHandledConversation(cookieId,
+					this.foreignConversationHandler.handleForeignConversation(
+							cookieId, request, response), response);
 
-		if (conversationId == null) {
-			conversationId = createConversationAndStoreCookie(request, response);
+		if (this.rejectForeignConversations && !isRoutedToThisNode(cookieId)) {
+			log.warn("Conversation '{}' is not owned by node '{}', rejecting request",
+					cookieId, this.nodeRoute);
+			response.sendError(this.foreignConversationStatus);
+			return null;
 		}
+
+		log.warn("Conversation '{}' is not available on node '{}', creating new conversation",
+				cookieId, this.nodeRoute);
+
+		return createConversationAndStoreCookie(request, response);
+	}
+
+	/**
+	 * Checks the conversation id returned by the
+	 * {@link #foreignConversationHandler} and stores it in the cookie if it is
+	 * not the one the request carried.
+	 * 
+	 * @param cookieId
+	 *            - the id found in the conversation cookie.
+	 * @param conversationId
+	 *            - the id returned by the handler, may be <code>null</code>.
+	 * @param response
+	 *            - the response processed by this filter.
+	 * @return the conversation id to bind or <code>null</code> if the request
+	 *         has been handled.
+	 * @throws ServletException
+	 *             if the {@link ConversationManager} does not know the
+	 *             returned conversation.
+	 */
+	private UUID bindableHandledConversation(RoutedConversationId cookieId,
+			UUID conversationId, HttpServletResponse response)
+			throws ServletException {
+
+		if (conversationId == null)
+			return null;
+
+		if (ConversationManager.getSessionFromConversation(conversationId) == null)
+			throw new ServletException("Foreign conversation handler returned unknown conversation '"
+					+ conversationId + "'");
+
+		if (!conversationId.equals(cookieId.getConversationId()))
+			storeConversationCookie(conversationId, response);
+
 		return conversationId;
 	}
 
@@ -203,38 +573,57 @@ public class OpenSessionInViewInsideConversationFilter extends
 
 		conversationId = ConversationManager.createConversation();
 
+		storeConversationCookie(conversationId, response);
+
+		return conversationId;
+	}
+
+	/**
+	 * Adds the cookie containing the conversation id, routed to this node, to
+	 * the response.
+	 * 
+	 * @param conversationId
+	 *            - the conversation id to store.
+	 * @param response
+	 *            - the response processed by this filter.
+	 */
+	private void storeConversationCookie(UUID conversationId,
+			HttpServletResponse response) {
+
 		Cookie cookie = new Cookie(this.activeConversationCookieName,
-				conversationId.toString());
+				new RoutedConversationId(conversationId, this.nodeRoute)
+						.toString());
 
 		cookie.setSecure(true);
 		cookie.setMaxAge(-1); // It will expire after browser shut-down
 
 		response.addCookie(cookie);
-		return conversationId;
 	}
 
 	/**
-	 * Retrieves the conversation id (represented by an instance of {@link UUID}
-	 * ) from the cookies in the request processed by this filter. If no cookie
-	 * named equals to {@link #activeConversationCookieName} is found, it will
-	 * return <code>null</code>.
+	 * Retrieves the conversation id (represented by an instance of
+	 * {@link RoutedConversationId}) from the cookies in the request processed
+	 * by this filter. If no cookie named equals to
+	 * {@link #activeConversationCookieName} is found, it will return
+	 * <code>null</code>.
 	 * 
 	 * @param request
 	 *            - the request processed by this filter.
-	 * @return the {@link UUID} found in the cookie or null if no cookie is
-	 *         found.
+	 * @return the {@link RoutedConversationId} found in the cookie or null if
+	 *         no cookie is found.
 	 */
-	private UUID lookupConversationIdOnCookies(HttpServletRequest request) {
+	private RoutedConversationId lookupConversationIdOnCookies(
+			HttpServletRequest request) {
 
 		if (request.getCookies() == null || request.getCookies().length == 0)
 			return null;
 
-		UUID conversationId = null;
+		RoutedConversationId conversationId = null;
 
 		for (Cookie cookie : request.getCookies()) {
 			if (cookie.getName().equals(this.activeConversationCookieName)) {
 				log.debug("Conversation cookie found in request {}.", request);
-				conversationId = UUID.fromString(cookie.getValue());
+				conversationId = RoutedConversationId.parse(cookie.getValue());
 				break;
 			}
 		}
@@ -264,6 +653,207 @@ public class OpenSessionInViewInsideConversationFilter extends
 		this.activeConversationCookieName = activeConversationCookieName;
 	}
 
+	/**
+	 * Gets the time in milliseconds to wait for conversations to be closed
+	 * when this filter is destroyed.
+	 * 
+	 * @return the shutdown timeout in milliseconds. Defaults to
+	 *         {@link #DEFAULT_SHUTDOWN_TIMEOUT}.
+	 */
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/**
+	 * Sets the time in milliseconds to wait for conversations to be closed
+	 * when this filter is destroyed. Sessions not closed within this time are
+	 * abandoned.
+	 * 
+	 * @param shutdownTimeout
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Gets the route identifying this node in a cluster.
+	 * 
+	 * @return the node route or <code>null</code> if none is configured.
+	 */
+	public String getNodeRoute() {
+		return nodeRoute;
+	}
+
+	/**
+	 * Sets the route identifying this node in a cluster. It will be appended
+	 * to the conversation id stored in the cookie.
+	 * 
+	 * @param nodeRoute
+	 *            - the route of this node.
+	 */
+	public void setNodeRoute(String nodeRoute) {
+		this.nodeRoute = nodeRoute;
+	}
+
+	/**
+	 * Gets the handler for conversations not owned by this node.
+	 * 
+	 * @return the {@link ForeignConversationHandler} or <code>null</code> if
+	 *         none is configured.
+	 */
+	public ForeignConversationHandler getForeignConversationHandler() {
+		return foreignConversationHandler;
+	}
+
+	/**
+	 * Sets the handler for conversations not owned by this node. If not set,
+	 * such requests get a new conversation on this node unless
+	 * {@link #rejectForeignConversations} is enabled.
+	 * 
+	 * @param foreignConversationHandler
+	 */
+	public void setForeignConversationHandler(
+			ForeignConversationHandler foreignConversationHandler) {
+		this.foreignConversationHandler = foreignConversationHandler;
+	}
+
+	/**
+	 * Whether requests for conversations routed to another node are rejected
+	 * when no {@link ForeignConversationHandler} is configured.
+	 * 
+	 * @return <code>true</code> if such requests are rejected.
+	 */
+	public boolean isRejectForeignConversations() {
+		return rejectForeignConversations;
+	}
+
+	/**
+	 * Sets whether requests for conversations routed to another node are
+	 * rejected with {@link #foreignConversationStatus} instead of getting a
+	 * new conversation on this node.
+	 * 
+	 * @param rejectForeignConversations
+	 */
+	public void setRejectForeignConversations(
+			boolean rejectForeignConversations) {
+		this.rejectForeignConversations = rejectForeignConversations;
+	}
+
+	/**
+	 * @return the error status sent for conversations routed to another node
+	 *         when they are rejected.
+	 */
+	public int getForeignConversationStatus() {
+		return foreignConversationStatus;
+	}
+
+	/**
+	 * Sets the error status sent for conversations routed to another node when
+	 * {@link #rejectForeignConversations} is enabled.
+	 * 
+	 * @param foreignConversationStatus
+	 */
+	public void setForeignConversationStatus(int foreignConversationStatus) {
+		this.foreignConversationStatus = foreignConversationStatus;
+	}
+
+	/**
+	 * Whether the SQL statements prepared by conversation {@link Session}s are
+	 * counted.
+	 * 
+	 * @return <code>true</code> if statement accounting is enabled.
+	 */
+	public boolean isStatementAccountingEnabled() {
+		return statementAccountingEnabled;
+	}
+
+	/**
+	 * Sets whether a {@link ConversationInterceptor} counting SQL statements is
+	 * installed on the {@link Session}s of new conversations.
+	 * 
+	 * @param statementAccountingEnabled
+	 */
+	public void setStatementAccountingEnabled(
+			boolean statementAccountingEnabled) {
+		this.statementAccountingEnabled = statementAccountingEnabled;
+	}
+
+	/**
+	 * @return the number of times a statement can be prepared within a request
+	 *         before being reported.
+	 */
+	public int getRepeatedStatementThreshold() {
+		return repeatedStatementThreshold;
+	}
+
+	/**
+	 * Sets the number of times a statement can be prepared within a request
+	 * before being reported to {@link ConversationStatistics}.
+	 * 
+	 * @param repeatedStatementThreshold
+	 */
+	public void setRepeatedStatementThreshold(int repeatedStatementThreshold) {
+		this.repeatedStatementThreshold = repeatedStatementThreshold;
+	}
+
+	/**
+	 * Whether a {@link ConversationQueryCache} is created for each
+	 * conversation.
+	 * 
+	 * @return <code>true</code> if the query cache is enabled.
+	 */
+	public boolean isQueryCacheEnabled() {
+		return queryCacheEnabled;
+	}
+
+	/**
+	 * Sets whether a {@link ConversationQueryCache} is created for each new
+	 * conversation.
+	 * 
+	 * @param queryCacheEnabled
+	 */
+	public void setQueryCacheEnabled(boolean queryCacheEnabled) {
+		this.queryCacheEnabled = queryCacheEnabled;
+	}
+
+	/**
+	 * @return the maximum number of query results kept by each conversation.
+	 */
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of query results kept by each conversation.
+	 * 
+	 * @param queryCacheSize
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCacheSize = queryCacheSize;
+	}
+
+	/**
+	 * Gets the path patterns of the requests that get a
+	 * {@link StatelessSession}.
+	 * 
+	 * @return the stateless path patterns.
+	 */
+	public String[] getStatelessPaths() {
+		return statelessPaths;
+	}
+
+	/**
+	 * Sets the Ant-style path patterns, relative to the context path, of the
+	 * requests that get a {@link StatelessSession} e.g.
+	 * <code>/export/**,/reports/*.csv</code> when given as init-param.
+	 * 
+	 * @param statelessPaths
+	 *            - the path patterns.
+	 */
+	public void setStatelessPaths(String[] statelessPaths) {
+		this.statelessPaths = StringUtils.trimArrayElements(statelessPaths);
+	}
+
 	/**
 	 * Wheter this filter is processing async dispatches.
 	 * 
@@ -0,0 +1,86 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.util.UUID;
+
+/**
+ * <p>
+ * Value stored in the conversation cookie. It is made of the conversation
+ * {@link UUID} optionally followed by a dot and the route of the node that owns
+ * the conversation e.g. <code>&lt;uuid&gt;.node1</code>.
+ * </p>
+ *
+ * <p>
+ * The format mirrors the <code>jvmRoute</code> suffix used by servlet
+ * containers for session ids, so sticky load balancers can route on the
+ * cookie value without further configuration.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public class RoutedConversationId {
+
+	/**
+	 * Separator between the conversation id and the route.
+	 */
+	public static final char ROUTE_SEPARATOR = '.';
+
+	private final UUID conversationId;
+
+	private final String route;
+
+	/**
+	 * @param conversationId
+	 *            - the id of the conversation.
+	 * @param route
+	 *            - the route of the node owning the conversation, may be
+	 *            <code>null</code>.
+	 */
+	public RoutedConversationId(UUID conversationId, String route) {
+		this.conversationId = conversationId;
+		this.route = route;
+	}
+
+	/**
+	 * Parses a cookie value with or without route.
+	 *
+	 * @param value
+	 *            - the cookie value.
+	 * @return the parsed value.
+	 * @throws IllegalArgumentException
+	 *             if the conversation id is not a valid {@link UUID}.
+	 */
+	public static RoutedConversationId parse(String value) {
+		int separatorIndex = value.indexOf(ROUTE_SEPARATOR);
+
+		if (separatorIndex < 0)
+			return new RoutedConversationId(UUID.fromString(value), null);
+
+		return new RoutedConversationId(UUID.fromString(value.substring(0,
+				separatorIndex)), value.substring(separatorIndex + 1));
+	}
+
+	public UUID getConversationId() {
+		return conversationId;
+	}
+
+	/**
+	 * @return the route of the node owning the conversation or
+	 *         <code>null</code> if the cookie did not carry one.
+	 */
+	public String getRoute() {
+		return route;
+	}
+
+	/**
+	 * @return the cookie value for this id.
+	 */
+	@Override
+	public String toString() {
+		if (route == null)
+			return conversationId.toString();
+
+		return conversationId.toString() + ROUTE_SEPARATOR + route;
+	}
+
+}
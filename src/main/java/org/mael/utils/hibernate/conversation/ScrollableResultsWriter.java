@@ -0,0 +1,104 @@
+package org.mael.utils.hibernate.conversation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.StatelessSession;
+
+/**
+ * <p>
+ * Streams the rows of a {@link Query} to an {@link OutputStream} using
+ * forward-only {@link ScrollableResults}, so only the row being written is held
+ * in memory.
+ * </p>
+ *
+ * <p>
+ * Intended for queries created with the {@link StatelessSession} provided by
+ * {@link ConversationalCurrentSessionContext#currentStatelessSession()} on
+ * stateless paths, as a regular Session would still keep every loaded entity
+ * in its persistence context.
+ * </p>
+ *
+ * @author ElderMael
+ *
+ */
+public class ScrollableResultsWriter {
+
+	/**
+	 * Default number of rows fetched from the database per round trip.
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+
+	private ScrollableResultsWriter() {
+
+	}
+
+	/**
+	 * Writes every row of the query to the response output stream.
+	 *
+	 * @see #write(Query, OutputStream, RowWriter, int)
+	 */
+	public static long write(Query query, HttpServletResponse response,
+			RowWriter rowWriter) throws IOException {
+		return write(query, response.getOutputStream(), rowWriter,
+				DEFAULT_FETCH_SIZE);
+	}
+
+	/**
+	 * Writes every row of the query to the output stream.
+	 *
+	 * @param query
+	 *            - the query whose rows are written.
+	 * @param out
+	 *            - the stream rows are written to. It is flushed but not
+	 *            closed.
+	 * @param rowWriter
+	 *            - the writer of each row.
+	 * @param fetchSize
+	 *            - number of rows fetched from the database per round trip.
+	 * @return the number of rows written.
+	 */
+	public static long write(Query query, OutputStream out,
+			RowWriter rowWriter, int fetchSize) throws IOException {
+
+		ScrollableResults results = query.setFetchSize(fetchSize).scroll(
+				ScrollMode.FORWARD_ONLY);
+
+		long rows = 0;
+
+		try {
+			while (results.next()) {
+				rowWriter.writeRow(results.get(), out);
+				rows++;
+			}
+		} finally {
+			results.close();
+		}
+
+		out.flush();
+
+		return rows;
+	}
+
+	/**
+	 * Writes a single row to the output stream.
+	 */
+	public interface RowWriter {
+
+		/**
+		 * @param row
+		 *            - the columns of the row as returned by
+		 *            {@link ScrollableResults#get()}.
+		 * @param out
+		 *            - the stream to write the row to.
+		 */
+		void writeRow(Object[] row, OutputStream out) throws IOException;
+
+	}
+
+}
@@ -0,0 +1,231 @@
+package org.mael.utils.hibernate.conversation;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.query.spi.QueryPlanCache;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+public class ConversationQueryCacheTests {
+
+	private static final String HQL = "from Item where order.id = ?";
+
+	private Session session;
+
+	private Query query;
+
+	private SessionFactoryImplementor sessionFactory;
+
+	private ConversationQueryCache cache;
+
+	private UUID conversationId;
+
+	@Before
+	public void init() {
+		this.session = mock(Session.class);
+		this.query = mock(Query.class);
+		this.sessionFactory = mock(SessionFactoryImplementor.class);
+
+		QueryPlanCache planCache = mock(QueryPlanCache.class);
+		HQLQueryPlan plan = mock(HQLQueryPlan.class);
+		EntityPersister persister = mock(EntityPersister.class);
+
+		when(session.createQuery(HQL)).thenReturn(query);
+		when(query.list()).thenReturn(Arrays.asList("first", "second"));
+
+		when(sessionFactory.getQueryPlanCache()).thenReturn(planCache);
+		when(
+				planCache.getHQLQueryPlan(eq(HQL), eq(false),
+						any(Map.class))).thenReturn(plan);
+		when(plan.getQuerySpaces()).thenReturn(
+				Collections.<Serializable> singleton("ITEM"));
+
+		when(sessionFactory.getEntityPersister(String.class.getName()))
+				.thenReturn(persister);
+		when(persister.getQuerySpaces()).thenReturn(
+				new Serializable[] { "ITEM" });
+
+		this.cache = new ConversationQueryCache(session, sessionFactory, 10);
+	}
+
+	@Test
+	public void testResultsCachedByQueryAndParameters() {
+
+		assertEquals(2, cache.list(HQL, 1L).size());
+		assertEquals(2, cache.list(HQL, 1L).size());
+		cache.list(HQL, 2L);
+
+		verify(query, times(2)).list();
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.size());
+
+	}
+
+	@Test
+	public void testFlushInvalidatesQueriedSpaces() {
+
+		cache.list(HQL, 1L);
+
+		cache.entityChanged("changed entity");
+		cache.flushed();
+
+		assertEquals(0, cache.size());
+
+		cache.list(HQL, 1L);
+
+		verify(query, times(2)).list();
+
+	}
+
+	@Test
+	public void testPendingChangesBypassCache() {
+
+		cache.entityChanged("saved entity");
+
+		cache.list(HQL, 1L);
+		cache.list(HQL, 1L);
+
+		verify(query, times(2)).list();
+		verify(session, never()).isDirty();
+		assertEquals(0, cache.size());
+
+	}
+
+	@Test
+	public void testFlushThroughSessionInvalidates() {
+
+		Session conversationSession = openConversation();
+		ConversationQueryCache conversationCache = ConversationManager
+				.getQueryCacheFromConversation(conversationId);
+
+		Transaction tx = conversationSession.beginTransaction();
+		conversationSession.save(new Item("first"));
+		tx.commit();
+
+		assertEquals(1, conversationCache.list("from Item").size());
+		assertEquals(1, conversationCache.list("from Item").size());
+		assertEquals(1, conversationCache.getHitCount());
+
+		tx = conversationSession.beginTransaction();
+		conversationSession.save(new Item("second"));
+
+		// Unflushed save bypasses the cache, the query flushes it
+		assertEquals(2, conversationCache.list("from Item").size());
+
+		tx.commit();
+
+		assertEquals(0, conversationCache.size());
+		assertEquals(2, conversationCache.list("from Item").size());
+		assertEquals(2, conversationCache.getMissCount());
+
+	}
+
+	@Test
+	public void testModifiedManagedEntityInvalidatesBeforeHit() {
+
+		Session conversationSession = openConversation();
+		ConversationQueryCache conversationCache = ConversationManager
+				.getQueryCacheFromConversation(conversationId);
+
+		Transaction tx = conversationSession.beginTransaction();
+		Item item = new Item("a");
+		conversationSession.save(item);
+		tx.commit();
+
+		tx = conversationSession.beginTransaction();
+
+		assertEquals(1,
+				conversationCache.list("from Item where name = ?", "a").size());
+
+		// Not flushed, only the auto-flush of the cached query detects it
+		item.setName("b");
+
+		assertEquals(0,
+				conversationCache.list("from Item where name = ?", "a").size());
+		assertEquals(0, conversationCache.getHitCount());
+		assertEquals(2, conversationCache.getMissCount());
+
+		tx.commit();
+
+	}
+
+	@Test
+	public void testSessionClearDiscardsDetachedResults() {
+
+		Session conversationSession = openConversation();
+		ConversationQueryCache conversationCache = ConversationManager
+				.getQueryCacheFromConversation(conversationId);
+
+		Transaction tx = conversationSession.beginTransaction();
+		conversationSession.save(new Item("first"));
+		tx.commit();
+
+		conversationCache.list("from Item");
+
+		conversationSession.clear();
+
+		List<?> items = conversationCache.list("from Item");
+
+		assertEquals(2, conversationCache.getMissCount());
+		assertTrue(conversationSession.contains(items.get(0)));
+
+	}
+
+	@Test
+	public void testRollbackClearsCache() {
+
+		Session conversationSession = openConversation();
+		ConversationQueryCache conversationCache = ConversationManager
+				.getQueryCacheFromConversation(conversationId);
+
+		Transaction tx = conversationSession.beginTransaction();
+		conversationSession.save(new Item("uncommitted"));
+		conversationSession.flush();
+
+		assertEquals(1, conversationCache.list("from Item").size());
+		assertEquals(1, conversationCache.size());
+
+		tx.rollback();
+
+		assertEquals(0, conversationCache.size());
+
+	}
+
+	private Session openConversation() {
+		new ClassPathXmlApplicationContext(
+				"org/mael/utils/hibernate/conversation/filter-context.xml");
+
+		ConversationManager.setQueryCacheEnabled(true);
+
+		this.conversationId = ConversationManager.createConversation();
+
+		return ConversationManager.getSessionFromConversation(conversationId);
+	}
+
+	@After
+	public void tearDown() {
+		ConversationManager.setQueryCacheEnabled(false);
+
+		if (conversationId != null)
+			ConversationManager.endConversation(conversationId);
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.mael.utils.hibernate.conversation;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.hibernate.Interceptor;
+import org.hibernate.type.Type;
+import org.junit.Before;
+import org.junit.Test;
+import org.mael.utils.hibernate.conversation.ConversationStatistics.RepeatedStatement;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+public class ConversationStatisticsTests {
+
+	private static final String REPEATED_SQL = "select * from item where order_id=?";
+
+	private static final String SINGLE_SQL = "select * from orders";
+
+	@Before
+	public void init() {
+		ConversationStatistics.clear();
+	}
+
+	@Test
+	public void testRepeatedStatementReported() {
+
+		UUID conversationId = UUID.randomUUID();
+
+		ConversationInterceptor interceptor = new ConversationInterceptor(
+				conversationId, null, 3);
+
+		interceptor.beginRequest();
+
+		interceptor.onPrepareStatement(SINGLE_SQL);
+		for (int i = 0; i < 5; i++)
+			interceptor.onPrepareStatement(REPEATED_SQL);
+
+		assertEquals(6, interceptor.getRequestStatementCount());
+
+		interceptor.endRequest();
+
+		assertEquals(0, interceptor.getRequestStatementCount());
+		assertEquals(6, interceptor.getConversationStatementCount());
+		assertEquals(1, ConversationStatistics.getRequestCount());
+		assertEquals(6, ConversationStatistics.getStatementCount());
+
+		List<RepeatedStatement> offenders = ConversationStatistics
+				.getWorstOffenders(10);
+
+		assertEquals(1, offenders.size());
+		assertEquals(REPEATED_SQL, offenders.get(0).getSql());
+		assertEquals(5, offenders.get(0).getMaxCount());
+		assertEquals(conversationId, offenders.get(0).getLastConversationId());
+
+	}
+
+	@Test
+	public void testStatementsBelowThresholdNotReported() {
+
+		ConversationInterceptor interceptor = new ConversationInterceptor(
+				UUID.randomUUID(), null, 3);
+
+		interceptor.beginRequest();
+
+		for (int i = 0; i < 3; i++)
+			interceptor.onPrepareStatement(REPEATED_SQL);
+
+		interceptor.endRequest();
+
+		assertTrue(ConversationStatistics.getWorstOffenders(10).isEmpty());
+
+	}
+
+	@Test
+	public void testCallbacksDelegatedToConfiguredInterceptor() {
+
+		Interceptor delegate = mock(Interceptor.class);
+
+		when(delegate.onPrepareStatement(SINGLE_SQL)).thenReturn(
+				"/* audited */ " + SINGLE_SQL);
+		when(
+				delegate.onSave(any(), any(Long.class), any(Object[].class),
+						any(String[].class), any(Type[].class))).thenReturn(
+				true);
+
+		ConversationInterceptor interceptor = new ConversationInterceptor(
+				UUID.randomUUID(), delegate, 3);
+
+		assertEquals("/* audited */ " + SINGLE_SQL,
+				interceptor.onPrepareStatement(SINGLE_SQL));
+		assertEquals(1, interceptor.getRequestStatementCount());
+
+		assertTrue(interceptor.onSave(new Object(), 1L, new Object[0],
+				new String[0], new Type[0]));
+
+		interceptor.onCollectionUpdate(new Object(), 1L);
+
+		verify(delegate).onCollectionUpdate(any(), eq(1L));
+
+	}
+
+	@Test
+	public void testNoStatementCountWithoutAccounting() {
+
+		new ClassPathXmlApplicationContext(
+				"org/mael/utils/hibernate/conversation/filter-context.xml");
+
+		ConversationManager.setQueryCacheEnabled(true);
+
+		try {
+			UUID conversationId = ConversationManager.createConversation();
+
+			assertNotNull(ConversationManager
+					.getInterceptorFromConversation(conversationId));
+			assertEquals(-1,
+					ConversationStatistics.getStatementCount(conversationId));
+
+			ConversationManager.endConversation(conversationId);
+		} finally {
+			ConversationManager.setQueryCacheEnabled(false);
+		}
+
+	}
+
+}
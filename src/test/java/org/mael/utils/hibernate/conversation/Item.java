@@ -0,0 +1,36 @@
+package org.mael.utils.hibernate.conversation;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+@Entity
+public class Item {
+
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	private String name;
+
+	public Item() {
+
+	}
+
+	public Item(String name) {
+		this.name = name;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+}
@@ -16,10 +16,15 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -157,6 +162,417 @@ public class OsivicFilterTests {
 
 	}
 
+	@Test
+	public void testDestroyClosesAllConversations() throws ServletException,
+			IOException {
+
+		UUID first = ConversationManager.createConversation();
+		UUID second = ConversationManager.createConversation();
+
+		Session firstSession = ConversationManager
+				.getSessionFromConversation(first);
+		Session secondSession = ConversationManager
+				.getSessionFromConversation(second);
+
+		filter.destroy();
+
+		assertFalse(firstSession.isOpen());
+		assertFalse(secondSession.isOpen());
+		assertNull(ConversationManager.getSessionFromConversation(first));
+		assertFalse(ConversationManager.isAcceptingConversations());
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+		// Ending a conversation already drained must not fail
+		ConversationManager.endConversation(first);
+
+	}
+
+	@Test
+	public void testConversationNotOwnedByNode() throws ServletException,
+			IOException {
+
+		OpenSessionInViewInsideConversationFilter firstNode = new OpenSessionInViewInsideConversationFilter();
+		firstNode.setNodeRoute("node1");
+
+		OpenSessionInViewInsideConversationFilter secondNode = new OpenSessionInViewInsideConversationFilter();
+		secondNode.setNodeRoute("node2");
+
+		ForeignConversationHandler handler = mock(ForeignConversationHandler.class);
+		secondNode.setForeignConversationHandler(handler);
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		firstNode.doFilter(request, response, mock(FilterChain.class));
+
+		ArgumentCaptor<Cookie> cookieCaptor = ArgumentCaptor
+				.forClass(Cookie.class);
+		verify(response).addCookie(cookieCaptor.capture());
+
+		RoutedConversationId cookieId = RoutedConversationId
+				.parse(cookieCaptor.getValue().getValue());
+
+		assertEquals("node1", cookieId.getRoute());
+
+		HttpServletRequest secondRequest = mock(HttpServletRequest.class);
+		HttpServletResponse secondResponse = mock(HttpServletResponse.class);
+		FilterChain secondChain = mock(FilterChain.class);
+
+		when(secondRequest.getCookies()).thenReturn(
+				new Cookie[] { cookieCaptor.getValue() });
+
+		secondNode.doFilter(secondRequest, secondResponse, secondChain);
+
+		verify(handler).handleForeignConversation(
+				argThat(new ArgumentMatcher<RoutedConversationId>() {
+					@Override
+					public boolean matches(Object argument) {
+						return argument.toString().endsWith(".node1");
+					}
+				}), eq(secondRequest), eq(secondResponse));
+
+		verify(secondChain, never()).doFilter(secondRequest, secondResponse);
+
+		ConversationManager.endConversation(cookieId.getConversationId());
+
+	}
+
+	@Test
+	public void testStatelessSessionBoundOnStatelessPath()
+			throws ServletException, IOException {
+
+		filter.setStatelessPaths(new String[] { "/export/**" });
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		when(request.getContextPath()).thenReturn("/app");
+		when(request.getRequestURI()).thenReturn("/app/export/orders.csv");
+
+		filter.doFilter(request, response, mock(FilterChain.class));
+
+		verify(request).setAttribute(eq(STATELESS_SESSION_ATTRIBUTE_NAME),
+				any(StatelessSession.class));
+		verify(request).removeAttribute(STATELESS_SESSION_ATTRIBUTE_NAME);
+
+		// No conversation is created for a stateless request without cookie
+		verify(response, never()).addCookie(any(Cookie.class));
+		verify(request, never()).setAttribute(
+				eq(ACTIVE_CONVERSATION_ATTRIBUTE_NAME), any());
+
+		HttpServletRequest otherRequest = mock(HttpServletRequest.class);
+
+		when(otherRequest.getContextPath()).thenReturn("/app");
+		when(otherRequest.getRequestURI()).thenReturn("/app/orders/edit");
+
+		filter.doFilter(otherRequest, response, mock(FilterChain.class));
+
+		verify(otherRequest, never()).setAttribute(
+				eq(STATELESS_SESSION_ATTRIBUTE_NAME), any());
+
+	}
+
+	@Test
+	public void testStatelessRequestWithUnknownConversation()
+			throws ServletException, IOException {
+
+		assertStatelessRequestWithoutConversation(filter,
+				new RoutedConversationId(UUID.randomUUID(), null));
+
+	}
+
+	@Test
+	public void testStatelessRequestWithConversationOfOtherNode()
+			throws ServletException, IOException {
+
+		OpenSessionInViewInsideConversationFilter secondNode = new OpenSessionInViewInsideConversationFilter();
+		secondNode.setNodeRoute("node2");
+		secondNode.setRejectForeignConversations(true);
+
+		UUID conversationId = ConversationManager.createConversation();
+
+		assertStatelessRequestWithoutConversation(secondNode,
+				new RoutedConversationId(conversationId, "node1"));
+
+		ConversationManager.endConversation(conversationId);
+
+	}
+
+	/**
+	 * Filters a stateless request carrying a conversation not owned by the
+	 * node and checks it only gets a {@link StatelessSession}.
+	 */
+	private void assertStatelessRequestWithoutConversation(
+			OpenSessionInViewInsideConversationFilter node,
+			RoutedConversationId cookieId) throws ServletException,
+			IOException {
+
+		node.setStatelessPaths(new String[] { "/export/**" });
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+
+		when(request.getContextPath()).thenReturn("/app");
+		when(request.getRequestURI()).thenReturn("/app/export/orders.csv");
+		when(request.getCookies()).thenReturn(
+				new Cookie[] { new Cookie(node.getActiveConversationCookieName(),
+						cookieId.toString()) });
+
+		node.doFilter(request, response, chain);
+
+		verify(chain).doFilter(request, response);
+		verify(request).setAttribute(eq(STATELESS_SESSION_ATTRIBUTE_NAME),
+				any(StatelessSession.class));
+		verify(request, never()).setAttribute(
+				eq(ACTIVE_CONVERSATION_ATTRIBUTE_NAME), any());
+		verify(response, never()).addCookie(any(Cookie.class));
+		verify(response, never()).sendError(anyInt());
+
+	}
+
+	@Test
+	public void testConversationRoutedToOtherNodeRejectedWhenEnabled()
+			throws ServletException, IOException {
+
+		OpenSessionInViewInsideConversationFilter secondNode = new OpenSessionInViewInsideConversationFilter();
+		secondNode.setNodeRoute("node2");
+		secondNode.setRejectForeignConversations(true);
+
+		UUID conversationId = ConversationManager.createConversation();
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+
+		when(request.getCookies()).thenReturn(
+				new Cookie[] { new Cookie(
+						secondNode.getActiveConversationCookieName(),
+						new RoutedConversationId(conversationId, "node1")
+								.toString()) });
+
+		secondNode.doFilter(request, response, chain);
+
+		verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		verify(response, never()).addCookie(any(Cookie.class));
+		verify(chain, never()).doFilter(request, response);
+		assertNotNull(ConversationManager
+				.getSessionFromConversation(conversationId));
+
+		ConversationManager.endConversation(conversationId);
+
+	}
+
+	@Test
+	public void testConversationTakenOverAfterOwningNodeDestroyed()
+			throws ServletException, IOException {
+
+		OpenSessionInViewInsideConversationFilter firstNode = new OpenSessionInViewInsideConversationFilter();
+		firstNode.setNodeRoute("node1");
+
+		OpenSessionInViewInsideConversationFilter secondNode = new OpenSessionInViewInsideConversationFilter();
+		secondNode.setNodeRoute("node2");
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		firstNode.doFilter(request, response, mock(FilterChain.class));
+
+		ArgumentCaptor<Cookie> cookieCaptor = ArgumentCaptor
+				.forClass(Cookie.class);
+		verify(response).addCookie(cookieCaptor.capture());
+
+		RoutedConversationId firstId = RoutedConversationId.parse(cookieCaptor
+				.getValue().getValue());
+
+		firstNode.destroy();
+
+		// The second node runs its own manager in a real cluster
+		ConversationManager.setSessionFactory((SessionFactoryImplementor) context
+				.getBean(SessionFactory.class));
+
+		HttpServletRequest failoverRequest = mock(HttpServletRequest.class);
+		HttpServletResponse failoverResponse = mock(HttpServletResponse.class);
+		FilterChain failoverChain = mock(FilterChain.class);
+
+		when(failoverRequest.getCookies()).thenReturn(
+				new Cookie[] { cookieCaptor.getValue() });
+
+		secondNode.doFilter(failoverRequest, failoverResponse, failoverChain);
+
+		ArgumentCaptor<Cookie> failoverCookieCaptor = ArgumentCaptor
+				.forClass(Cookie.class);
+		verify(failoverResponse).addCookie(failoverCookieCaptor.capture());
+		verify(failoverResponse, never()).sendError(anyInt());
+		verify(failoverChain).doFilter(failoverRequest, failoverResponse);
+
+		RoutedConversationId secondId = RoutedConversationId
+				.parse(failoverCookieCaptor.getValue().getValue());
+
+		assertEquals("node2", secondId.getRoute());
+		assertFalse(firstId.getConversationId().equals(
+				secondId.getConversationId()));
+		assertNotNull(ConversationManager.getSessionFromConversation(secondId
+				.getConversationId()));
+
+		ConversationManager.endConversation(secondId.getConversationId());
+
+	}
+
+	@Test
+	public void testUnroutedCookieOwnedByRoutedNode() throws ServletException,
+			IOException {
+
+		OpenSessionInViewInsideConversationFilter node = new OpenSessionInViewInsideConversationFilter();
+		node.setNodeRoute("node1");
+
+		UUID conversationId = ConversationManager.createConversation();
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+
+		when(request.getCookies()).thenReturn(
+				new Cookie[] { new Cookie(node.getActiveConversationCookieName(),
+						conversationId.toString()) });
+
+		node.doFilter(request, response, chain);
+
+		ArgumentCaptor<Cookie> cookieCaptor = ArgumentCaptor
+				.forClass(Cookie.class);
+		verify(response).addCookie(cookieCaptor.capture());
+		verify(response, never()).sendError(anyInt());
+		verify(chain).doFilter(request, response);
+		verify(request).setAttribute(ACTIVE_CONVERSATION_ATTRIBUTE_NAME,
+				conversationId);
+
+		assertEquals(new RoutedConversationId(conversationId, "node1")
+				.toString(), cookieCaptor.getValue().getValue());
+
+		ConversationManager.endConversation(conversationId);
+
+	}
+
+	@Test
+	public void testUnknownConversationOnOwningNode() throws ServletException,
+			IOException {
+
+		OpenSessionInViewInsideConversationFilter node = new OpenSessionInViewInsideConversationFilter();
+		node.setNodeRoute("node1");
+
+		RoutedConversationId unknownId = new RoutedConversationId(
+				UUID.randomUUID(), "node1");
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		FilterChain chain = mock(FilterChain.class);
+
+		when(request.getCookies()).thenReturn(
+				new Cookie[] { new Cookie(node.getActiveConversationCookieName(),
+						unknownId.toString()) });
+
+		node.doFilter(request, response, chain);
+
+		ArgumentCaptor<Cookie> cookieCaptor = ArgumentCaptor
+				.forClass(Cookie.class);
+		verify(response).addCookie(cookieCaptor.capture());
+		verify(chain).doFilter(request, response);
+
+		RoutedConversationId newId = RoutedConversationId.parse(cookieCaptor
+				.getValue().getValue());
+
+		assertFalse(unknownId.getConversationId().equals(
+				newId.getConversationId()));
+		assertNotNull(ConversationManager.getSessionFromConversation(newId
+				.getConversationId()));
+
+		ConversationManager.endConversation(newId.getConversationId());
+
+	}
+
+	@Test
+	public void testUnknownConversationPassedToHandler()
+			throws ServletException, IOException {
+
+		OpenSessionInViewInsideConversationFilter node = new OpenSessionInViewInsideConversationFilter();
+		node.setNodeRoute("node1");
+
+		ForeignConversationHandler handler = mock(ForeignConversationHandler.class);
+		node.setForeignConversationHandler(handler);
+
+		RoutedConversationId unknownId = new RoutedConversationId(
+				UUID.randomUUID(), "node1");
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+
+		when(request.getCookies()).thenReturn(
+				new Cookie[] { new Cookie(node.getActiveConversationCookieName(),
+						unknownId.toString()) });
+		when(
+				handler.handleForeignConversation(
+						any(RoutedConversationId.class), eq(request),
+						eq(response))).thenReturn(UUID.randomUUID());
+
+		try {
+			node.doFilter(request, response, mock(FilterChain.class));
+			fail("Unknown conversation returned by handler must be rejected");
+		} catch (ServletException e) {
+			log.debug("Expected exception", e);
+		}
+
+		verify(handler).handleForeignConversation(
+				any(RoutedConversationId.class), eq(request), eq(response));
+
+	}
+
+	@Test
+	public void testCurrentSessionOnStatelessRequest() {
+
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		StatelessSession statelessSession = mock(StatelessSession.class);
+
+		when(request.getAttribute(STATELESS_SESSION_ATTRIBUTE_NAME))
+				.thenReturn(statelessSession);
+
+		ThreadedRequestRegistry.setCurrentRequest(request);
+
+		try {
+			assertSame(statelessSession,
+					ConversationalCurrentSessionContext
+							.currentStatelessSession());
+
+			try {
+				context.getBean(SessionFactory.class).getCurrentSession();
+				fail("Conversation session must not be provided on stateless requests");
+			} catch (HibernateException e) {
+				log.debug("Expected exception", e);
+			}
+		} finally {
+			ThreadedRequestRegistry.setCurrentRequest(null);
+		}
+
+	}
+
+	@Test(expected = HibernateException.class)
+	public void testNoStatelessSessionOnConversationRequest() {
+
+		ThreadedRequestRegistry.setCurrentRequest(mock(HttpServletRequest.class));
+
+		try {
+			ConversationalCurrentSessionContext.currentStatelessSession();
+		} finally {
+			ThreadedRequestRegistry.setCurrentRequest(null);
+		}
+
+	}
+
 	public class NoopAssertingFilterChain implements FilterChain {
 
 		private HttpServletRequest request;
@@ -0,0 +1,117 @@
+package org.mael.utils.hibernate.conversation;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+import org.mael.utils.hibernate.conversation.ScrollableResultsWriter.RowWriter;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+public class ScrollableResultsWriterTests {
+
+	private static final RowWriter NAME_WRITER = new RowWriter() {
+		@Override
+		public void writeRow(Object[] row, OutputStream out)
+				throws IOException {
+			out.write((row[0] + "\n").getBytes("UTF-8"));
+		}
+	};
+
+	private ApplicationContext context;
+
+	@Before
+	public void init() {
+		this.context = new ClassPathXmlApplicationContext(
+				"org/mael/utils/hibernate/conversation/filter-context.xml");
+	}
+
+	@Test
+	public void testRowsWrittenFromStatelessSession() throws IOException {
+
+		StatelessSession statelessSession = context.getBean(
+				SessionFactory.class).openStatelessSession();
+
+		try {
+			Transaction tx = statelessSession.beginTransaction();
+			statelessSession.insert(new Item("b"));
+			statelessSession.insert(new Item("a"));
+			statelessSession.insert(new Item("c"));
+			tx.commit();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			long rows = ScrollableResultsWriter.write(statelessSession
+					.createQuery("select i.name from Item i order by i.name"),
+					out, NAME_WRITER, 2);
+
+			assertEquals(3, rows);
+			assertEquals("a\nb\nc\n", out.toString("UTF-8"));
+		} finally {
+			statelessSession.close();
+		}
+
+	}
+
+	@Test
+	public void testResultsClosedWhenRowWriterFails() throws IOException {
+
+		Query query = mock(Query.class);
+		ScrollableResults results = mock(ScrollableResults.class);
+
+		when(query.setFetchSize(anyInt())).thenReturn(query);
+		when(query.scroll(ScrollMode.FORWARD_ONLY)).thenReturn(results);
+		when(results.next()).thenReturn(true);
+		when(results.get()).thenReturn(new Object[] { "a" });
+
+		OutputStream out = mock(OutputStream.class);
+		doThrow(new IOException("Client disconnected")).when(out).write(
+				any(byte[].class));
+
+		try {
+			ScrollableResultsWriter.write(query, out, NAME_WRITER, 10);
+			fail("Row writer exception must be propagated");
+		} catch (IOException e) {
+			assertEquals("Client disconnected", e.getMessage());
+		}
+
+		verify(query).setFetchSize(10);
+		verify(results).close();
+
+	}
+
+	@Test
+	public void testResultsClosedAfterLastRow() throws IOException {
+
+		Query query = mock(Query.class);
+		ScrollableResults results = mock(ScrollableResults.class);
+
+		when(query.setFetchSize(anyInt())).thenReturn(query);
+		when(query.scroll(ScrollMode.FORWARD_ONLY)).thenReturn(results);
+		when(results.next()).thenReturn(true, true, false);
+		when(results.get()).thenReturn(new Object[] { "a" },
+				new Object[] { "b" });
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertEquals(2,
+				ScrollableResultsWriter.write(query, out, NAME_WRITER, 10));
+		assertEquals("a\nb\n", out.toString("UTF-8"));
+
+		verify(results).close();
+
+	}
+
+}